@@ -0,0 +1,6 @@
+#! /bin/bash
+# Example: source ./bench.sh 20000 4 64
+rm -rf bench/bin
+mkdir -p bench/bin
+javac -cp "lib/postgresql-42.1.4.jar" src/*.java bench/*.java -d bench/bin/
+java -cp bench/bin/ DispatchBenchmark $@
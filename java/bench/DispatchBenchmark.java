@@ -0,0 +1,97 @@
+/*
+ * Throughput benchmark for the Dispatcher
+ * =======================================
+ *
+ * Queues a synthetic backlog of open service requests from several desks at
+ * once, then has the same desks dispatch it in batches, completing every
+ * assignment straight away so mechanics keep freeing up.
+ *
+ * Usage: java DispatchBenchmark [requests] [desks] [batch size]
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class DispatchBenchmark{
+	static final String[] COMPLAINTS = {
+		"I cannot hear the horn", "Change oil", "Replace windows", "I cannot hear the radio",
+		"Passenger side is always empty", "The wheel does not turn right",
+		"It came back from space and it makes a funny noise", "Burns too much gas",
+		"It is not fast enough", "No brakes", "Needs new parachute", "Add rockets",
+		"It smells funny", "The wings do not work"
+	};
+	static final int MECHANICS = 250;
+
+	public static void main(String[] args) throws Exception {
+		int requests = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		int desks = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+		int batchSize = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+
+		//warm up the JIT before measuring
+		for (int i = 0; i < 5; ++i)
+			run(requests, desks, batchSize, false);
+		run(requests, 1, batchSize, true);
+		run(requests, desks, batchSize, true);
+	}
+
+	static void run(final int requests, final int desks, final int batchSize, boolean report) throws Exception {
+		final Dispatcher dispatcher = new Dispatcher(Dispatcher.DEFAULT_STRIPES, Dispatcher.DEFAULT_CAPACITY);
+		Random random = new Random(42);
+		for (int id = 0; id < MECHANICS; ++id)
+			dispatcher.addMechanic(id, "Mechanic " + id, random.nextInt(11), random.nextInt(30));
+
+		long start = System.nanoTime();
+		runDesks(desks, new Desk(){
+			public void work(int desk){
+				Random random = new Random(desk);
+				for (int rid = desk; rid < requests; rid += desks)
+					dispatcher.submit(rid, 16000 + random.nextInt(1000), 1 + random.nextInt(200000), COMPLAINTS[random.nextInt(COMPLAINTS.length)]);
+			}
+		});
+		long queued = System.nanoTime();
+
+		final AtomicInteger done = new AtomicInteger();
+		runDesks(desks, new Desk(){
+			public void work(int desk){
+				while (done.get() < requests){
+					List<Dispatcher.Assignment> batch = dispatcher.dispatch(batchSize);
+					for (Dispatcher.Assignment assignment : batch)
+						dispatcher.complete(assignment.request.rid);
+					done.addAndGet(batch.size());
+				}
+			}
+		});
+		long dispatched = System.nanoTime();
+
+		if (dispatcher.openRequests() != 0){
+			throw new IllegalStateException(dispatcher.openRequests() + " requests left undispatched");
+		}
+		if (report){
+			System.out.println(String.format("%d requests, %d desk(s), batch %d: submit %.0f req/s, dispatch+complete %.0f req/s",
+				requests, desks, batchSize,
+				requests / ((queued - start) / 1e9), requests / ((dispatched - queued) / 1e9)));
+		}
+	}
+
+	interface Desk{
+		void work(int desk);
+	}
+
+	static void runDesks(int desks, final Desk body) throws InterruptedException {
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < desks; ++i){
+			final int desk = i;
+			threads.add(new Thread(new Runnable(){
+				public void run(){
+					body.work(desk);
+				}
+			}));
+		}
+		for (Thread thread : threads)
+			thread.start();
+		for (Thread thread : threads)
+			thread.join();
+	}
+}
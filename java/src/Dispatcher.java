@@ -0,0 +1,620 @@
+/*
+ * Mechanic dispatch scheduler
+ * ===========================
+ *
+ * Assigns open service requests to mechanics.  Requests are classified by
+ * their complaint into the _CODE domain of sql/create.sql (MJ, MN, SV); major
+ * work goes first and needs a more experienced mechanic.  Within a code the
+ * oldest request wins, then the one with the higher odometer reading.
+ *
+ * The classification is a heuristic: complaints are free text, so they are
+ * matched by whole words against two short keyword lists and anything that
+ * matches neither counts as minor work.
+ *
+ * Mechanics are ranked by the time they would need to finish one more job:
+ * their open load times their historical turnaround, i.e. the days between
+ * a Service_Request and the Closed_Request that closed it, kept up to date
+ * as requests close.
+ *
+ * Requests and mechanics are spread over a fixed number of stripes, each
+ * guarded by its own lock, so several desks can submit, dispatch and complete
+ * work at the same time without serializing on one queue.  A stripe that has
+ * no eligible mechanic left borrows one from the other stripes, locking them
+ * one at a time in index order.  A desk dispatching a batch follows the
+ * order above within its own stripe only; dispatching for the whole shop
+ * compares the heads of all stripes before each assignment.
+ */
+
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+
+public class Dispatcher{
+	//complaint codes, in dispatch order
+	static final int MAJOR = 0;
+	static final int MINOR = 1;
+	static final int SERVICE = 2;
+	static final String[] CODES = {"MJ", "MN", "SV"};
+
+	//lowest experience tier allowed to take each code
+	static final int[] REQUIRED_TIER = {2, 1, 0};
+	//years of experience at which each tier starts
+	static final int[] TIER_YEARS = {0, 2, 5};
+
+	static final Pattern NON_LETTERS = Pattern.compile("[^a-z]+");
+	static final Set<String> MAJOR_WORDS = new HashSet<String>(Arrays.asList(
+		"brake", "brakes", "wheel", "wheels", "steer", "steering", "wing", "wings",
+		"smoke", "smokes", "noise", "noises", "smell", "smells", "leak", "leaks", "leaking"));
+	static final Set<String> SERVICE_WORDS = new HashSet<String>(Arrays.asList(
+		"change", "replace", "add", "new", "oil", "check", "inspect", "inspection", "tune"));
+
+	static final int DEFAULT_STRIPES = 16;
+	static final int DEFAULT_CAPACITY = 3;
+
+	static class Request{
+		final int rid;
+		final int date;
+		final int odometer;
+		final int code;
+
+		Request(int rid, int date, int odometer, int code){
+			this.rid = rid;
+			this.date = date;
+			this.odometer = odometer;
+			this.code = code;
+		}
+	}
+
+	static class Mechanic{
+		final int id;
+		final String name;
+		final int experience;
+		final int tier;
+		final Stripe stripe;
+		//guarded by stripe.lock
+		int load = 0;
+		double turnaround;
+		long closedDays = 0;
+		int closedJobs = 0;
+
+		Mechanic(int id, String name, int experience, double turnaround, Stripe stripe){
+			this.id = id;
+			this.name = name;
+			this.experience = experience;
+			this.tier = tierOf(experience);
+			this.turnaround = turnaround;
+			this.stripe = stripe;
+		}
+
+		//expected days until one more job would be done
+		double score(){
+			return (load + 1) * (turnaround + 1);
+		}
+	}
+
+	static class Assignment{
+		final Request request;
+		final Mechanic mechanic;
+
+		Assignment(Request request, Mechanic mechanic){
+			this.request = request;
+			this.mechanic = mechanic;
+		}
+
+		List<String> toRecord(){
+			List<String> record = new ArrayList<String>();
+			record.add(String.valueOf(request.rid));
+			record.add(CODES[request.code]);
+			record.add(String.valueOf(mechanic.id));
+			record.add(mechanic.name);
+			return record;
+		}
+	}
+
+	static final Comparator<Request> REQUEST_ORDER = new Comparator<Request>(){
+		public int compare(Request a, Request b){
+			if (a.date != b.date) return Integer.compare(a.date, b.date);
+			if (a.odometer != b.odometer) return Integer.compare(b.odometer, a.odometer);
+			return Integer.compare(a.rid, b.rid);
+		}
+	};
+
+	static final Comparator<Mechanic> MECHANIC_ORDER = new Comparator<Mechanic>(){
+		public int compare(Mechanic a, Mechanic b){
+			int c = Double.compare(a.score(), b.score());
+			return c != 0 ? c : Integer.compare(a.id, b.id);
+		}
+	};
+
+	static class Stripe{
+		final ReentrantLock lock = new ReentrantLock();
+		//open requests per code
+		final List<PriorityQueue<Request>> open = new ArrayList<PriorityQueue<Request>>();
+		//mechanics below capacity per tier
+		final List<PriorityQueue<Mechanic>> available = new ArrayList<PriorityQueue<Mechanic>>();
+
+		Stripe(){
+			for (int i = 0; i < CODES.length; ++i)
+				open.add(new PriorityQueue<Request>(16, REQUEST_ORDER));
+			for (int i = 0; i < TIER_YEARS.length; ++i)
+				available.add(new PriorityQueue<Mechanic>(16, MECHANIC_ORDER));
+		}
+	}
+
+	private final Stripe[] stripes;
+	private final int capacity;
+	//deals each tier round robin over the stripes so every stripe gets a mix
+	private final int[] nextStripeForTier = new int[TIER_YEARS.length];
+	private final AtomicInteger nextDesk = new AtomicInteger();
+	private final Map<Integer, Assignment> assigned = new ConcurrentHashMap<Integer, Assignment>();
+	//queued requests, so a request closed before it is dispatched can be withdrawn
+	private final Map<Integer, Request> pending = new ConcurrentHashMap<Integer, Request>();
+
+	private final Map<Integer, Mechanic> mechanicsById = new ConcurrentHashMap<Integer, Mechanic>();
+
+	//snapshot tables the dispatcher follows
+	static final int[] SYNCED_TABLES = {ShopSnapshot.MECHANIC, ShopSnapshot.SERVICE_REQUEST, ShopSnapshot.CLOSED_REQUEST};
+	//snapshot reloads and rows already fed in, guarded by this
+	private final int[] seenReloads = new int[ShopSnapshot.TABLES.length];
+	private int seenMechanics = 0;
+	private int seenRequests = 0;
+	private int seenClosed = 0;
+	//date of every request seen, to time the closed requests
+	private final Map<Integer, Integer> requestDate = new HashMap<Integer, Integer>();
+	//days and number of closed requests over the shop
+	private long shopDays = 0;
+	private long shopJobs = 0;
+	//turnaround for mechanics without closed requests
+	private double shopAverage = 0;
+
+	/**
+	 * Requests go to mechanics of their own stripe first, so stripes work best
+	 * when each one holds mechanics of every tier.
+	 *
+	 * @param stripes the number of independently locked stripes
+	 * @param capacity the number of open jobs a mechanic may hold at once
+	 */
+	public Dispatcher(int stripes, int capacity){
+		if (stripes <= 0 || capacity <= 0){
+			throw new IllegalArgumentException("Stripes and capacity must be greater than zero.");
+		}
+		this.stripes = new Stripe[stripes];
+		for (int i = 0; i < stripes; ++i)
+			this.stripes[i] = new Stripe();
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Builds a dispatcher holding every mechanic and every service request that
+	 * has no closed request yet.  Turnarounds come from the closed requests.
+	 *
+	 * @param snapshot the caught up snapshot of the database
+	 * @return the dispatcher, ready to dispatch
+	 */
+	public static Dispatcher fromSnapshot(ShopSnapshot snapshot){
+		//give every stripe each tier the shop has, so borrowing from other stripes stays rare
+		int mechanics = snapshot.rows(ShopSnapshot.MECHANIC);
+		IntBuffer experience = snapshot.column(ShopSnapshot.MECHANIC, 3);
+		int[] perTier = new int[TIER_YEARS.length];
+		for (int r = 0; r < mechanics; ++r)
+			perTier[tierOf(experience.get(r))]++;
+		int stripes = DEFAULT_STRIPES;
+		for (int count : perTier)
+			if (count > 0) stripes = Math.min(stripes, count);
+
+		Dispatcher dispatcher = new Dispatcher(stripes, DEFAULT_CAPACITY);
+		dispatcher.sync(snapshot);
+		return dispatcher;
+	}
+
+	/**
+	 * Feeds in what the snapshot gained since the dispatcher was built or last
+	 * synced: new mechanics, new service requests, and closed requests, which
+	 * free their mechanic or leave the queue and count towards the turnaround
+	 * of the mechanic who closed them.  When the snapshot had to reload one of
+	 * those tables, its rows are matched up again by id, so assignments and
+	 * mechanic loads carry over.
+	 *
+	 * @param snapshot the caught up snapshot of the database
+	 */
+	public synchronized void sync(ShopSnapshot snapshot){
+		if (snapshot.reloads(ShopSnapshot.MECHANIC) != seenReloads[ShopSnapshot.MECHANIC]){
+			seenMechanics = 0;
+		}
+		//either one decides which requests are open, so both are gone through again
+		if (snapshot.reloads(ShopSnapshot.SERVICE_REQUEST) != seenReloads[ShopSnapshot.SERVICE_REQUEST]
+			|| snapshot.reloads(ShopSnapshot.CLOSED_REQUEST) != seenReloads[ShopSnapshot.CLOSED_REQUEST]){
+			seenRequests = 0;
+			seenClosed = 0;
+		}
+		for (int table : SYNCED_TABLES)
+			seenReloads[table] = snapshot.reloads(table);
+		//going through every closed request again, so the turnarounds are counted afresh
+		boolean recount = seenClosed == 0;
+
+		int closed = snapshot.rows(ShopSnapshot.CLOSED_REQUEST);
+		IntBuffer closedRid = snapshot.column(ShopSnapshot.CLOSED_REQUEST, 1);
+		IntBuffer closedMid = snapshot.column(ShopSnapshot.CLOSED_REQUEST, 2);
+		IntBuffer closedDate = snapshot.column(ShopSnapshot.CLOSED_REQUEST, 3);
+		Set<Integer> closing = new HashSet<Integer>();
+		for (int r = seenClosed; r < closed; ++r)
+			closing.add(closedRid.get(r));
+
+		//submit skips requests that are already queued or assigned
+		int requests = snapshot.rows(ShopSnapshot.SERVICE_REQUEST);
+		IntBuffer rid = snapshot.column(ShopSnapshot.SERVICE_REQUEST, 0);
+		IntBuffer date = snapshot.column(ShopSnapshot.SERVICE_REQUEST, 3);
+		IntBuffer odometer = snapshot.column(ShopSnapshot.SERVICE_REQUEST, 4);
+		for (int r = seenRequests; r < requests; ++r){
+			requestDate.put(rid.get(r), date.get(r));
+			if (closing.contains(rid.get(r))) continue;
+			submit(rid.get(r), date.get(r), odometer.get(r), snapshot.string(ShopSnapshot.SERVICE_REQUEST, 5, r));
+		}
+		seenRequests = requests;
+
+		//days from request to close, per mechanic
+		if (recount){
+			shopDays = 0;
+			shopJobs = 0;
+		}
+		Map<Integer, long[]> days = new HashMap<Integer, long[]>();
+		for (int r = seenClosed; r < closed; ++r){
+			complete(closedRid.get(r));
+			Integer opened = requestDate.get(closedRid.get(r));
+			if (opened == null) continue;
+			long d = Math.max(0, closedDate.get(r) - opened);
+			long[] sum = days.get(closedMid.get(r));
+			if (sum == null){
+				sum = new long[2];
+				days.put(closedMid.get(r), sum);
+			}
+			sum[0] += d;
+			sum[1]++;
+			shopDays += d;
+			shopJobs++;
+		}
+		seenClosed = closed;
+		shopAverage = shopJobs == 0 ? 0 : (double) shopDays / shopJobs;
+
+		int mechanics = snapshot.rows(ShopSnapshot.MECHANIC);
+		IntBuffer mid = snapshot.column(ShopSnapshot.MECHANIC, 0);
+		IntBuffer experience = snapshot.column(ShopSnapshot.MECHANIC, 3);
+		//addMechanic skips mechanics that are already known
+		for (int r = seenMechanics; r < mechanics; ++r){
+			String name = snapshot.string(ShopSnapshot.MECHANIC, 1, r).trim() + " " + snapshot.string(ShopSnapshot.MECHANIC, 2, r).trim();
+			addMechanic(mid.get(r), name, experience.get(r), shopAverage);
+		}
+		seenMechanics = mechanics;
+
+		if (recount){
+			for (Mechanic mechanic : mechanicsById.values()){
+				long[] sum = days.get(mechanic.id);
+				record(mechanic, sum == null ? 0 : sum[0], sum == null ? 0 : (int) sum[1], true);
+			}
+		}else{
+			for (Map.Entry<Integer, long[]> e : days.entrySet()){
+				Mechanic mechanic = mechanicsById.get(e.getKey());
+				if (mechanic != null) record(mechanic, e.getValue()[0], (int) e.getValue()[1], false);
+			}
+		}
+	}
+
+	/**
+	 * Maps a complaint to MJ, MN or SV by whole keywords, so "address" does
+	 * not count as "add".
+	 *
+	 * @param complaint the complaint text, may be null
+	 * @return the code index
+	 */
+	static int classify(String complaint){
+		if (complaint == null) return MINOR;
+		boolean service = false;
+		for (String word : NON_LETTERS.split(complaint.toLowerCase())){
+			if (MAJOR_WORDS.contains(word)) return MAJOR;
+			service |= SERVICE_WORDS.contains(word);
+		}
+		return service ? SERVICE : MINOR;
+	}
+
+	static int tierOf(int experience){
+		int tier = 0;
+		while (tier + 1 < TIER_YEARS.length && experience >= TIER_YEARS[tier + 1])
+			++tier;
+		return tier;
+	}
+
+	/**
+	 * Adds a mechanic with no open jobs.
+	 *
+	 * @param id the mechanic's id
+	 * @param name the mechanic's name
+	 * @param experience the years of experience
+	 * @param turnaround the average days to close a request
+	 * @return false if a mechanic with the id was already added
+	 */
+	public boolean addMechanic(int id, String name, int experience, double turnaround){
+		int tier = tierOf(experience);
+		Mechanic mechanic;
+		synchronized (nextStripeForTier){
+			if (mechanicsById.containsKey(id)) return false;
+			mechanic = new Mechanic(id, name, experience, turnaround, stripes[nextStripeForTier[tier]++ % stripes.length]);
+			mechanicsById.put(id, mechanic);
+		}
+		Stripe stripe = mechanic.stripe;
+		stripe.lock.lock();
+		try{
+			stripe.available.get(tier).add(mechanic);
+		}finally{
+			stripe.lock.unlock();
+		}
+		return true;
+	}
+
+	/**
+	 * Queues an open service request.
+	 *
+	 * @param rid the request id
+	 * @param date the request date as an epoch day
+	 * @param odometer the odometer reading
+	 * @param complaint the complaint text, may be null
+	 * @return false if the request is already queued or assigned
+	 */
+	public boolean submit(int rid, int date, int odometer, String complaint){
+		if (assigned.containsKey(rid) || pending.containsKey(rid)){
+			return false;
+		}
+		Request request = new Request(rid, date, odometer, classify(complaint));
+		if (pending.putIfAbsent(rid, request) != null){
+			return false;
+		}
+		Stripe stripe = stripes[Math.floorMod(rid, stripes.length)];
+		stripe.lock.lock();
+		try{
+			stripe.open.get(request.code).add(request);
+		}finally{
+			stripe.lock.unlock();
+		}
+		return true;
+	}
+
+	/**
+	 * Assigns up to batchSize requests from the next stripe in turn.  Desks
+	 * calling this at the same time work on different stripes, so the dispatch
+	 * order only holds within the stripe; use dispatchAll for the shop-wide
+	 * order.  When the stripe has no eligible mechanic for its most urgent
+	 * request, one is borrowed from another stripe.
+	 *
+	 * @param batchSize the most requests to assign
+	 * @return the assignments made, possibly none
+	 */
+	public List<Assignment> dispatch(int batchSize){
+		int home = Math.floorMod(nextDesk.getAndIncrement(), stripes.length);
+		Stripe stripe = stripes[home];
+		List<Assignment> result = new ArrayList<Assignment>();
+		stripe.lock.lock();
+		try{
+			for (int code = 0; code < CODES.length && result.size() < batchSize; ++code){
+				PriorityQueue<Request> queue = stripe.open.get(code);
+				while (!queue.isEmpty() && result.size() < batchSize){
+					if (!assignHead(home, code, result)) break;
+				}
+			}
+		}finally{
+			stripe.lock.unlock();
+		}
+		return result;
+	}
+
+	/**
+	 * Assigns requests in the shop-wide dispatch order until limit requests are
+	 * assigned or no mechanic is left for what is still open.  Each step peeks
+	 * at the head of every stripe, one lock at a time, and assigns the best.
+	 *
+	 * @param limit the most requests to assign
+	 * @return the assignments made
+	 */
+	public List<Assignment> dispatchAll(int limit){
+		List<Assignment> result = new ArrayList<Assignment>();
+		for (int code = 0; code < CODES.length && result.size() < limit; ++code){
+			while (result.size() < limit){
+				int best = -1;
+				Request bestHead = null;
+				for (int i = 0; i < stripes.length; ++i){
+					stripes[i].lock.lock();
+					try{
+						Request head = stripes[i].open.get(code).peek();
+						if (head != null && (bestHead == null || REQUEST_ORDER.compare(head, bestHead) < 0)){
+							best = i;
+							bestHead = head;
+						}
+					}finally{
+						stripes[i].lock.unlock();
+					}
+				}
+				if (best < 0) break;
+
+				Stripe stripe = stripes[best];
+				boolean more;
+				stripe.lock.lock();
+				try{
+					//another desk may have emptied the stripe since the peek; look again
+					more = stripe.open.get(code).isEmpty() || assignHead(best, code, result);
+				}finally{
+					stripe.lock.unlock();
+				}
+				//no mechanic may take this code, so none of its requests can go
+				if (!more) break;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Marks a request as closed.  An assigned request frees its mechanic's
+	 * slot; a queued one is withdrawn from the queue.
+	 *
+	 * @param rid the request id
+	 * @return false if the request was neither assigned nor queued
+	 */
+	public boolean complete(int rid){
+		Assignment assignment = assigned.remove(rid);
+		if (assignment != null){
+			release(assignment.mechanic);
+			return true;
+		}
+		Request request = pending.remove(rid);
+		if (request == null) return false;
+		Stripe stripe = stripes[Math.floorMod(rid, stripes.length)];
+		stripe.lock.lock();
+		try{
+			//not found if a desk is dispatching it right now; that desk backs off
+			stripe.open.get(request.code).remove(request);
+		}finally{
+			stripe.lock.unlock();
+		}
+		return true;
+	}
+
+	/**
+	 * @return the number of requests still waiting for a mechanic
+	 */
+	public int openRequests(){
+		int count = 0;
+		for (Stripe stripe : stripes){
+			stripe.lock.lock();
+			try{
+				for (PriorityQueue<Request> queue : stripe.open)
+					count += queue.size();
+			}finally{
+				stripe.lock.unlock();
+			}
+		}
+		return count;
+	}
+
+	/*
+	 * Assigns the head of one code queue of stripes[home], borrowing a mechanic
+	 * from another stripe when home has none.  Callers hold the home lock and
+	 * the queue is not empty.  Returns false, with the request back in its
+	 * queue, if no stripe has a mechanic who may take the code.
+	 */
+	private boolean assignHead(int home, int code, List<Assignment> result){
+		Stripe stripe = stripes[home];
+		PriorityQueue<Request> queue = stripe.open.get(code);
+		Request request = queue.poll();
+		Mechanic mechanic = take(stripe, code);
+		Assignment assignment;
+		if (mechanic != null){
+			assignment = claim(request, mechanic);
+		}else{
+			//hold only one stripe lock at a time, so desks can not deadlock
+			stripe.lock.unlock();
+			try{
+				mechanic = borrow(home, code);
+				assignment = mechanic == null ? null : claim(request, mechanic);
+			}finally{
+				stripe.lock.lock();
+			}
+			if (mechanic == null){
+				//requeue unless the request was closed while borrowing
+				if (pending.get(request.rid) == request) queue.add(request);
+				return false;
+			}
+		}
+		if (assignment != null) result.add(assignment);
+		return true;
+	}
+
+	/*
+	 * Records the assignment unless the request was closed since it left the
+	 * queue, in which case the mechanic gets the slot back.  Callers hold no
+	 * lock other than the mechanic's own stripe lock.
+	 */
+	private Assignment claim(Request request, Mechanic mechanic){
+		Assignment assignment = new Assignment(request, mechanic);
+		assigned.put(request.rid, assignment);
+		if (pending.remove(request.rid, request)) return assignment;
+		if (assigned.remove(request.rid, assignment)) release(mechanic);
+		return null;
+	}
+
+	//gives a slot back to the mechanic
+	private void release(Mechanic mechanic){
+		Stripe stripe = mechanic.stripe;
+		stripe.lock.lock();
+		try{
+			PriorityQueue<Mechanic> queue = stripe.available.get(mechanic.tier);
+			//re-key the mechanic: the queue must not see the load change in place
+			if (mechanic.load < capacity) queue.remove(mechanic);
+			mechanic.load--;
+			queue.add(mechanic);
+		}finally{
+			stripe.lock.unlock();
+		}
+	}
+
+	//counts closed requests towards the mechanic's turnaround, replacing the old count if asked; callers hold this
+	private void record(Mechanic mechanic, long days, int jobs, boolean replace){
+		Stripe stripe = mechanic.stripe;
+		stripe.lock.lock();
+		try{
+			PriorityQueue<Mechanic> queue = stripe.available.get(mechanic.tier);
+			//re-key the mechanic: the queue must not see the turnaround change in place
+			if (mechanic.load < capacity) queue.remove(mechanic);
+			if (replace){
+				mechanic.closedDays = 0;
+				mechanic.closedJobs = 0;
+			}
+			mechanic.closedDays += days;
+			mechanic.closedJobs += jobs;
+			mechanic.turnaround = mechanic.closedJobs == 0 ? shopAverage : (double) mechanic.closedDays / mechanic.closedJobs;
+			if (mechanic.load < capacity) queue.add(mechanic);
+		}finally{
+			stripe.lock.unlock();
+		}
+	}
+
+	//takes a slot from the best mechanic of the stripe that may do code, callers hold stripe.lock
+	private Mechanic take(Stripe stripe, int code){
+		PriorityQueue<Mechanic> best = null;
+		for (int tier = REQUIRED_TIER[code]; tier < TIER_YEARS.length; ++tier){
+			PriorityQueue<Mechanic> candidates = stripe.available.get(tier);
+			if (candidates.isEmpty()) continue;
+			if (best == null || MECHANIC_ORDER.compare(candidates.peek(), best.peek()) < 0)
+				best = candidates;
+		}
+		if (best == null) return null;
+
+		Mechanic mechanic = best.poll();
+		mechanic.load++;
+		if (mechanic.load < capacity) best.add(mechanic);
+		return mechanic;
+	}
+
+	//takes a slot from the first other stripe that has an eligible mechanic, callers hold no lock
+	private Mechanic borrow(int home, int code){
+		for (int i = 0; i < stripes.length; ++i){
+			if (i == home) continue;
+			Stripe stripe = stripes[i];
+			stripe.lock.lock();
+			try{
+				Mechanic mechanic = take(stripe, code);
+				if (mechanic != null) return mechanic;
+			}finally{
+				stripe.lock.unlock();
+			}
+		}
+		return null;
+	}
+}
@@ -21,6 +21,9 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.List;
 import java.util.ArrayList;
 
@@ -33,6 +36,13 @@ import java.util.ArrayList;
 public class MechanicShop{
 	//reference to physical database connection
 	private Connection _connection = null;
+	//in-memory copy of the tables, persisted between runs (see ShopSnapshot)
+	private ShopSnapshot _snapshot = null;
+	private Path _snapshotFile = null;
+	//set when this process wrote, so the next catch-up compares row counts too
+	private boolean _snapshotStale = false;
+	//assigns open service requests to mechanics, kept in step with the snapshot
+	private Dispatcher _dispatcher = null;
 	static BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
 	
 	public MechanicShop(String dbname, String dbport, String user, String passwd) throws SQLException {
@@ -65,6 +75,7 @@ public class MechanicShop{
 
 		// issues the update instruction
 		stmt.executeUpdate (sql);
+		this._snapshotStale = true;
 
 		// close the instruction
 	    stmt.close ();
@@ -113,6 +124,28 @@ public class MechanicShop{
 		return rowCount;
 	}
 	
+	/**
+	 * Method to output records computed outside the DBMS in the same format
+	 * as executeQueryAndPrintResult.
+	 * 
+	 * @param columns the column names
+	 * @param records the records to output
+	 * @return the number of rows printed
+	 */
+	public int printResult (String[] columns, List<List<String>> records) {
+		if (!records.isEmpty()){
+			for (String column : columns)
+				System.out.print(column + "\t");
+			System.out.println();
+		}
+		for (List<String> record : records){
+			for (String value : record)
+				System.out.print (value + "\t");
+			System.out.println ();
+		}
+		return records.size();
+	}
+	
 	/**
 	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
 	 * method issues the query to the DBMS and returns the results as
@@ -193,6 +226,69 @@ public class MechanicShop{
 		return -1;
 	}
 
+	/**
+	 * Method to open the binary snapshot stored in the given file, or to build
+	 * it from the database when there is none yet.  The snapshot is caught up
+	 * with the database before it is used.
+	 * 
+	 * @param file path of the snapshot file
+	 * @throws java.sql.SQLException when failed to query the database
+	 */
+	public void openSnapshot(String file) throws SQLException {
+		System.out.print("Loading snapshot...");
+		long start = System.currentTimeMillis();
+		this._snapshotFile = Paths.get(file);
+		this._snapshot = ShopSnapshot.open(this, this._snapshotFile);
+		System.out.println("Done (" + (System.currentTimeMillis() - start) + " ms)");
+	}
+
+	/**
+	 * Method to fetch the snapshot after catching it up with the database.
+	 * The dispatcher, if running, is fed the rows the snapshot gained.
+	 * 
+	 * @return the current snapshot, or null if none was opened
+	 * @throws java.sql.SQLException when failed to query the database
+	 */
+	public ShopSnapshot getSnapshot() throws SQLException {
+		if (this._snapshot != null){
+			this._snapshot.catchUp(this, this._snapshotStale);
+			this._snapshotStale = false;
+			if (this._dispatcher != null){
+				this._dispatcher.sync(this._snapshot);
+			}
+		}
+		return this._snapshot;
+	}
+
+	/**
+	 * Method to fetch the dispatcher, starting it from the snapshot on first
+	 * use.  It keeps its assignments for as long as the program runs.
+	 * 
+	 * @return the dispatcher, or null if no snapshot was opened
+	 * @throws java.sql.SQLException when failed to query the database
+	 */
+	public Dispatcher getDispatcher() throws SQLException {
+		ShopSnapshot snapshot = getSnapshot();
+		if (snapshot != null && this._dispatcher == null){
+			this._dispatcher = Dispatcher.fromSnapshot(snapshot);
+		}
+		return this._dispatcher;
+	}
+
+	/**
+	 * Method to write the snapshot back to its file if one was opened.
+	 */
+	public void saveSnapshot(){
+		if (this._snapshot == null){
+			return;
+		}
+		try{
+			this._snapshot.save(this._snapshotFile);
+		}catch (IOException e){
+			System.err.println("Unable to save snapshot: " + e.getMessage());
+		}
+	}
+
 	/**
 	 * Method to close the physical connection if it is open.
 	 */
@@ -239,6 +335,11 @@ public class MechanicShop{
 			String user = args[2];
 			
 			esql = new MechanicShop (dbname, dbport, user, "");
+			try{
+				esql.openSnapshot(dbname + ".snap");
+			}catch(SQLException e){
+				System.err.println("Unable to load snapshot: " + e.getMessage());
+			}
 			
 			boolean keepon = true;
 			while(keepon){
@@ -254,7 +355,8 @@ public class MechanicShop{
 				System.out.println("8. ListCarsBefore1995With50000Milles");
 				System.out.println("9. ListKCarsWithTheMostServices");
 				System.out.println("10. ListCustomersInDescendingOrderOfTheirTotalBill");
-				System.out.println("11. < EXIT");
+				System.out.println("11. DispatchOpenServiceRequests");
+				System.out.println("12. < EXIT");
 				
 				/*
 				 * FOLLOW THE SPECIFICATION IN THE PROJECT DESCRIPTION
@@ -270,7 +372,8 @@ public class MechanicShop{
 					case 8: ListCarsBefore1995With50000Milles(esql); break;
 					case 9: ListKCarsWithTheMostServices(esql); break;
 					case 10: ListCustomersInDescendingOrderOfTheirTotalBill(esql); break;
-					case 11: keepon = false; break;
+					case 11: DispatchOpenServiceRequests(esql); break;
+					case 12: keepon = false; break;
 				}
 			}
 		}catch(Exception e){
@@ -278,6 +381,7 @@ public class MechanicShop{
 		}finally{
 			try{
 				if(esql != null) {
+					esql.saveSnapshot ();
 					System.out.print("Disconnecting from database...");
 					esql.cleanup ();
 					System.out.println("Done\n\nBye !");
@@ -613,9 +717,14 @@ public class MechanicShop{
             } while (true);
 
             try {
-                String query = "INSERT INTO Closed_Request VALUES (" + serviceRequestNumber + ", " + serviceRequestNumber + ", " + employeeID + ", getdate(), \'" + comment + "\', " + bill + ") RETURNING *";
+                String query = "INSERT INTO Closed_Request VALUES (" + serviceRequestNumber + ", " + serviceRequestNumber + ", " + employeeID + ", CURRENT_DATE, \'" + comment + "\', " + bill + ") RETURNING *";
                 int rowCount = esql.executeQueryAndPrintResult(query);
                 System.out.println("Total row(s): " + rowCount);
+                esql._snapshotStale = true;
+                // frees the mechanic's slot, or takes the request off the dispatch queue
+                if (esql._dispatcher != null) {
+                    esql._dispatcher.complete(serviceRequestNumber);
+                }
             } catch (Exception e) {
                 System.err.println(e.getMessage());
             }
@@ -671,9 +780,14 @@ public class MechanicShop{
 		} while (true);
 
 		try {
-			String query = "SELECT C.make, C.model, C.year, COUNT(C.vin) AS numServiceOrders FROM Car C, Service_Request SR WHERE C.vin = SR.car_vin GROUP BY C.vin ORDER BY numServiceOrders DESC LIMIT " + limit;
-		
-			int rowCount = esql.executeQueryAndPrintResult(query);
+			int rowCount;
+			ShopSnapshot snapshot = esql.getSnapshot();
+			if (snapshot != null) {
+				rowCount = esql.printResult(new String[] {"make", "model", "year", "numserviceorders"}, snapshot.topCarsByServices(limit));
+			} else {
+				String query = "SELECT C.make, C.model, C.year, COUNT(C.vin) AS numServiceOrders FROM Car C, Service_Request SR WHERE C.vin = SR.car_vin GROUP BY C.vin ORDER BY numServiceOrders DESC LIMIT " + limit;
+				rowCount = esql.executeQueryAndPrintResult(query);
+			}
 			System.out.println("Total row(s): " + rowCount);
 		} catch (Exception e) {
 			System.err.println(e.getMessage());
@@ -682,12 +796,51 @@ public class MechanicShop{
 	
 	public static void ListCustomersInDescendingOrderOfTheirTotalBill(MechanicShop esql){//9
 		try {
-			String query = "SELECT C.fname, C.lname, SUM(CR.bill) AS totalBill FROM Customer C, Closed_Request CR WHERE EXISTS (SELECT * FROM Service_Request SR WHERE SR.rid = CR.wid AND C.id = SR.customer_id) GROUP BY C.id ORDER BY TotalBill DESC";
-		
-			int rowCount = esql.executeQueryAndPrintResult(query);
+			int rowCount;
+			ShopSnapshot snapshot = esql.getSnapshot();
+			if (snapshot != null) {
+				rowCount = esql.printResult(new String[] {"fname", "lname", "totalbill"}, snapshot.customersByTotalBill());
+			} else {
+				String query = "SELECT C.fname, C.lname, SUM(CR.bill) AS totalBill FROM Customer C, Closed_Request CR WHERE EXISTS (SELECT * FROM Service_Request SR WHERE SR.rid = CR.wid AND C.id = SR.customer_id) GROUP BY C.id ORDER BY TotalBill DESC";
+				rowCount = esql.executeQueryAndPrintResult(query);
+			}
 			System.out.println("Total row(s): " + rowCount);
 		} catch (Exception e) {
 			System.err.println(e.getMessage());
 		}	
 	}
+
+	public static void DispatchOpenServiceRequests(MechanicShop esql){//11
+		int limit;
+		do {
+			System.out.print("\tEnter the number of open service requests to dispatch: ");
+			try {
+				limit = Integer.parseInt(in.readLine());
+				if (limit <= 0) {
+					throw new RuntimeException("Number must be greater than zero.");
+				}
+				break;
+			} catch (Exception e) {
+				System.err.println(e.getMessage());
+				continue;
+			}
+		} while (true);
+
+		try {
+			Dispatcher dispatcher = esql.getDispatcher();
+			if (dispatcher == null) {
+				throw new RuntimeException("Dispatching needs the snapshot, which could not be loaded.");
+			}
+			List<List<String>> records = new ArrayList<List<String>>();
+			for (Dispatcher.Assignment assignment : dispatcher.dispatchAll(limit)) {
+				records.add(assignment.toRecord());
+			}
+
+			int rowCount = esql.printResult(new String[] {"rid", "code", "mid", "mechanic"}, records);
+			System.out.println("Total row(s): " + rowCount);
+			System.out.println("Still waiting: " + dispatcher.openRequests());
+		} catch (Exception e) {
+			System.err.println(e.getMessage());
+		}
+	}
 }
\ No newline at end of file
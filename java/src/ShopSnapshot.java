@@ -0,0 +1,774 @@
+/*
+ * Binary snapshot of the MechanicShop tables
+ * ==========================================
+ *
+ * Keeps a columnar copy of the six tables from sql/create.sql plus the
+ * aggregates behind the bill and service reports, and persists it to disk so
+ * a new process can start warm instead of re-reading everything from
+ * Postgres.
+ *
+ * File layout (little endian, every section 4-byte aligned):
+ *
+ *   header  magic (int) | version (int) | body length (long) | CRC32 of body (long)
+ *   body    string dictionary: count, hash table size, String.hashCode per
+ *           entry, count + 1 byte offsets, open addressing hash table of
+ *           (id + 1), then the UTF-8 bytes of every entry
+ *           per table: row count, largest integer key, then one fixed-width
+ *           int column after another
+ *           total bill per customer: count, then (customer id, long total) pairs
+ *           services per car: count, then (vin dictionary id, count) pairs
+ *
+ * String columns hold dictionary ids (-1 for NULL) and DATE columns hold the
+ * epoch day, so every column is a plain int array.
+ *
+ * A snapshot read from disk stays mapped: columns are IntBuffer views on the
+ * mapping and dictionary entries are decoded the first time they are asked
+ * for.  A table is copied to the heap only when rows are appended to it.
+ */
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+public class ShopSnapshot{
+	static final int MAGIC = 0x504E534D; // "MSNP"
+	static final int VERSION = 3;
+	static final int HEADER_SIZE = 4 + 4 + 8 + 8;
+
+	//column kinds
+	static final int INT = 0;
+	static final int STR = 1;
+	static final int DATE = 2;
+
+	//marks a NULL string column
+	static final int NULL_REF = -1;
+
+	//table indexes, in the order of sql/create.sql
+	static final int CUSTOMER = 0;
+	static final int MECHANIC = 1;
+	static final int CAR = 2;
+	static final int OWNS = 3;
+	static final int SERVICE_REQUEST = 4;
+	static final int CLOSED_REQUEST = 5;
+
+	static final String[] TABLES = {
+		"Customer", "Mechanic", "Car", "Owns", "Service_Request", "Closed_Request"
+	};
+
+	//the first column of every table is its primary key
+	static final String[][] COLUMNS = {
+		{"id", "fname", "lname", "phone", "address"},
+		{"id", "fname", "lname", "experience"},
+		{"vin", "make", "model", "year"},
+		{"ownership_id", "customer_id", "car_vin"},
+		{"rid", "customer_id", "car_vin", "date", "odometer", "complain"},
+		{"wid", "rid", "mid", "date", "comment", "bill"}
+	};
+
+	static final int[][] KINDS = {
+		{INT, STR, STR, STR, STR},
+		{INT, STR, STR, INT},
+		{STR, STR, STR, INT},
+		{INT, INT, STR},
+		{INT, INT, STR, DATE, INT, STR},
+		{INT, INT, INT, DATE, STR, INT}
+	};
+
+	//the file mapping the views below point into, null until read or saved
+	private MappedByteBuffer map = null;
+
+	//dictionary entries stored in the mapping
+	private int mappedStrings = 0;
+	private IntBuffer mappedHashes = null;
+	private IntBuffer mappedOffsets = null;
+	private IntBuffer mappedTable = null;
+	private ByteBuffer mappedBytes = null;
+	private String[] decoded = null;
+
+	//dictionary entries added since, with ids from mappedStrings on
+	private final List<String> strings = new ArrayList<String>();
+	private final Map<String, Integer> stringIds = new HashMap<String, Integer>();
+
+	//columns[table][column], either views on the mapping or wrapped heap arrays
+	private final IntBuffer[][] columns = new IntBuffer[TABLES.length][];
+	private final boolean[] onHeap = new boolean[TABLES.length];
+	private final int[] rows = new int[TABLES.length];
+	//largest key of each integer keyed table, the "changed since" marker
+	private final int[] maxKey = new int[TABLES.length];
+	//number of times each table had to be reloaded whole
+	private final int[] reloads = new int[TABLES.length];
+
+	//aggregates persisted with the snapshot
+	private final Map<Integer, Long> customerBill = new HashMap<Integer, Long>();
+	private final Map<Integer, Integer> carServices = new HashMap<Integer, Integer>();
+
+	//join indexes, built from the columns the first time rows are appended
+	private final Map<Integer, Integer> requestCustomer = new HashMap<Integer, Integer>();
+	private final Map<Integer, Integer> closedBill = new HashMap<Integer, Integer>();
+	private boolean joinIndexesBuilt = false;
+
+	private ShopSnapshot(){
+		for (int t = 0; t < TABLES.length; ++t){
+			columns[t] = new IntBuffer[COLUMNS[t].length];
+			for (int c = 0; c < columns[t].length; ++c)
+				columns[t][c] = IntBuffer.allocate(16);
+			onHeap[t] = true;
+			maxKey[t] = Integer.MIN_VALUE;
+		}
+	}
+
+	/**
+	 * Opens the snapshot stored in the given file and catches it up with the
+	 * database.  When the file is missing or unreadable every table is loaded
+	 * from the database instead.
+	 *
+	 * @param esql the open database connection
+	 * @param file the snapshot file
+	 * @return a snapshot that reflects the current database contents
+	 * @throws java.sql.SQLException when a catch-up query failed
+	 */
+	public static ShopSnapshot open(MechanicShop esql, Path file) throws SQLException {
+		ShopSnapshot snapshot = null;
+		if (Files.exists(file)){
+			try{
+				snapshot = read(file);
+			}catch(IOException e){
+				System.err.println("Ignoring snapshot " + file + ": " + e.getMessage());
+			}
+		}
+		if (snapshot == null){
+			snapshot = new ShopSnapshot();
+		}
+		snapshot.catchUp(esql, true);
+		return snapshot;
+	}
+
+	/**
+	 * Brings every table up to date with the database in one probing round
+	 * trip plus one query per table that changed.  The shop only ever appends
+	 * rows, so an integer keyed table is asked for the rows past its largest
+	 * key, which the primary key index answers without a scan.  Car keys are
+	 * VINs in no particular order, so when the Car count changes its new keys
+	 * are found by comparing the keys in the database with the ones held.
+	 *
+	 * A full catch-up also compares the row count of every table and reloads a
+	 * table whose new rows the key check does not account for, e.g. a
+	 * Closed_Request inserted with a lower wid.  Counting scans the tables, so
+	 * it is only worth doing at startup and after this process wrote.
+	 *
+	 * @param esql the open database connection
+	 * @param full whether to compare row counts as well
+	 * @throws java.sql.SQLException when a catch-up query failed
+	 */
+	public void catchUp(MechanicShop esql, boolean full) throws SQLException {
+		StringBuilder probe = new StringBuilder("SELECT ");
+		for (int t = 0; t < TABLES.length; ++t){
+			if (t > 0) probe.append(", ");
+			if (KINDS[t][0] == INT){
+				probe.append("(SELECT COUNT(*) FROM ").append(TABLES[t]).append(" WHERE ").append(COLUMNS[t][0]).append(" > ").append(maxKey[t]).append("), ");
+			}else{
+				probe.append("0, ");
+			}
+			if (full || KINDS[t][0] == STR){
+				probe.append("(SELECT COUNT(*) FROM ").append(TABLES[t]).append(")");
+			}else{
+				probe.append("-1");
+			}
+		}
+		List<String> counts = esql.executeQueryAndReturnResult(probe.toString()).get(0);
+
+		int[] appendedFrom = new int[TABLES.length];
+		boolean reloaded = false;
+		for (int t = 0; t < TABLES.length; ++t){
+			appendedFrom[t] = rows[t];
+			int newer = Integer.parseInt(counts.get(2 * t).trim());
+			int count = Integer.parseInt(counts.get(2 * t + 1).trim());
+			if (KINDS[t][0] == STR){
+				if (count == rows[t]){
+					continue;
+				}
+				List<List<String>> added = rows[t] == 0 ? null : rowsWithNewKeys(esql, t);
+				if (added != null && rows[t] + added.size() == count){
+					append(t, added);
+					continue;
+				}
+			}else if (count < 0 || rows[t] + newer == count){
+				if (newer > 0){
+					append(t, esql.executeQueryAndReturnResult(selectAll(t) + " WHERE " + COLUMNS[t][0] + " > " + maxKey[t]));
+				}
+				continue;
+			}
+			if (rows[t] > 0){
+				++reloads[t];
+			}
+			rows[t] = 0;
+			maxKey[t] = Integer.MIN_VALUE;
+			appendedFrom[t] = 0;
+			append(t, esql.executeQueryAndReturnResult(selectAll(t)));
+			reloaded = true;
+		}
+
+		if (reloaded){
+			rebuildAggregates();
+		}else if (appendedFrom[SERVICE_REQUEST] < rows[SERVICE_REQUEST] || appendedFrom[CLOSED_REQUEST] < rows[CLOSED_REQUEST]){
+			buildJoinIndexes(appendedFrom[SERVICE_REQUEST], appendedFrom[CLOSED_REQUEST]);
+			updateAggregates(appendedFrom[SERVICE_REQUEST], appendedFrom[CLOSED_REQUEST]);
+		}
+	}
+
+	/**
+	 * Writes the snapshot to the given file.  The data goes to a temporary file
+	 * first and is then moved over the old snapshot, so a crash never leaves a
+	 * half written file behind.  The snapshot is then served from the new file.
+	 *
+	 * @param file the snapshot file
+	 * @throws java.io.IOException when the file could not be written
+	 */
+	public void save(Path file) throws IOException {
+		int dictionarySize = mappedStrings + strings.size();
+		int tableSize = Math.max(16, Integer.highestOneBit(Math.max(1, dictionarySize)) * 4);
+		byte[][] encoded = new byte[strings.size()][];
+		long bytes = mappedStrings == 0 ? 0 : mappedOffsets.get(mappedStrings);
+		for (int i = 0; i < encoded.length; ++i){
+			encoded[i] = strings.get(i).getBytes(StandardCharsets.UTF_8);
+			bytes += encoded[i].length;
+		}
+		long size = 8 + 4L * dictionarySize + 4L * (dictionarySize + 1) + 4L * tableSize + align(bytes);
+		for (int t = 0; t < TABLES.length; ++t){
+			size += 8 + 4L * rows[t] * COLUMNS[t].length;
+		}
+		size += 4 + 12L * customerBill.size();
+		size += 4 + 8L * carServices.size();
+		if (size > Integer.MAX_VALUE){
+			throw new IOException("Snapshot too large: " + size + " bytes");
+		}
+
+		ByteBuffer body = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+		body.putInt(dictionarySize);
+		body.putInt(tableSize);
+		int[] hashes = new int[dictionarySize];
+		for (int id = 0; id < dictionarySize; ++id){
+			hashes[id] = id < mappedStrings ? mappedHashes.get(id) : strings.get(id - mappedStrings).hashCode();
+			body.putInt(hashes[id]);
+		}
+		int offset = 0;
+		for (int id = 0; id < dictionarySize; ++id){
+			body.putInt(offset);
+			offset += id < mappedStrings ? mappedOffsets.get(id + 1) - mappedOffsets.get(id) : encoded[id - mappedStrings].length;
+		}
+		body.putInt(offset);
+		int[] table = new int[tableSize];
+		for (int id = 0; id < dictionarySize; ++id){
+			int slot = hashes[id] & (tableSize - 1);
+			while (table[slot] != 0)
+				slot = (slot + 1) & (tableSize - 1);
+			table[slot] = id + 1;
+		}
+		body.asIntBuffer().put(table);
+		body.position(body.position() + 4 * tableSize);
+		if (mappedStrings > 0){
+			ByteBuffer old = mappedBytes.duplicate();
+			old.limit(mappedOffsets.get(mappedStrings));
+			body.put(old);
+		}
+		for (byte[] entry : encoded){
+			body.put(entry);
+		}
+		body.position((int) align(body.position()));
+		for (int t = 0; t < TABLES.length; ++t){
+			body.putInt(rows[t]);
+			body.putInt(maxKey[t]);
+			for (IntBuffer column : columns[t]){
+				IntBuffer values = column.duplicate();
+				values.position(0);
+				values.limit(rows[t]);
+				body.asIntBuffer().put(values);
+				body.position(body.position() + 4 * rows[t]);
+			}
+		}
+		body.putInt(customerBill.size());
+		for (Map.Entry<Integer, Long> e : customerBill.entrySet()){
+			body.putInt(e.getKey());
+			body.putLong(e.getValue());
+		}
+		body.putInt(carServices.size());
+		for (Map.Entry<Integer, Integer> e : carServices.entrySet()){
+			body.putInt(e.getKey());
+			body.putInt(e.getValue());
+		}
+		body.flip();
+
+		CRC32 crc = new CRC32();
+		crc.update(body.duplicate());
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(MAGIC).putInt(VERSION).putLong(body.remaining()).putLong(crc.getValue());
+		header.flip();
+
+		Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)){
+			ByteBuffer[] buffers = {header, body};
+			while (body.hasRemaining()){
+				ch.write(buffers);
+			}
+			ch.force(false);
+		}
+
+		//a mapped file can not be replaced on Windows, so let go of it first
+		MappedByteBuffer old = this.map;
+		Path restore = file;
+		if (old != null){
+			detach();
+			unmap(old);
+		}
+		try{
+			Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}catch(IOException e){
+			if (old != null){
+				attach(map(restore));
+			}
+			throw e;
+		}
+		attach(map(file));
+	}
+
+	/**
+	 * Maps a snapshot file into memory and checks it.  Nothing but the
+	 * aggregates is copied out of the mapping.
+	 *
+	 * @param file the snapshot file
+	 * @return the snapshot, served from the mapping
+	 * @throws java.io.IOException when the file is unreadable, from another
+	 *         version, or fails its checksum
+	 */
+	static ShopSnapshot read(Path file) throws IOException {
+		MappedByteBuffer map = map(file);
+		try{
+			if (map.getInt(0) != MAGIC){
+				throw new IOException("not a snapshot file");
+			}
+			int version = map.getInt(4);
+			if (version != VERSION){
+				throw new IOException("unsupported version " + version);
+			}
+			long length = map.getLong(8);
+			if (length != map.capacity() - HEADER_SIZE){
+				throw new IOException("expected " + length + " body bytes, found " + (map.capacity() - HEADER_SIZE));
+			}
+			ByteBuffer body = map.duplicate();
+			body.position(HEADER_SIZE);
+			CRC32 crc = new CRC32();
+			crc.update(body);
+			if (crc.getValue() != map.getLong(16)){
+				throw new IOException("checksum mismatch");
+			}
+		}catch(IOException e){
+			//let go of the file so save() can replace it, even on Windows
+			unmap(map);
+			throw e;
+		}
+
+		ShopSnapshot snapshot = new ShopSnapshot();
+		snapshot.attach(map);
+		return snapshot;
+	}
+
+	/**
+	 * Same rows as the "ListKCarsWithTheMostServices" query: make, model, year
+	 * and number of service requests of the k most serviced cars.
+	 *
+	 * @param k the number of cars to return
+	 * @return the rows, most serviced first
+	 */
+	public List<List<String>> topCarsByServices(int k){
+		Map<Integer, Integer> carRow = rowIndex(CAR);
+		List<Map.Entry<Integer, Integer>> entries = new ArrayList<Map.Entry<Integer, Integer>>(carServices.entrySet());
+		Collections.sort(entries, new Comparator<Map.Entry<Integer, Integer>>(){
+			public int compare(Map.Entry<Integer, Integer> a, Map.Entry<Integer, Integer> b){
+				int c = Integer.compare(b.getValue(), a.getValue());
+				return c != 0 ? c : Integer.compare(a.getKey(), b.getKey());
+			}
+		});
+
+		List<List<String>> result = new ArrayList<List<String>>();
+		for (Map.Entry<Integer, Integer> e : entries){
+			if (result.size() == k) break;
+			Integer row = carRow.get(e.getKey());
+			if (row == null) continue;
+			result.add(Arrays.asList(
+				string(CAR, 1, row), string(CAR, 2, row), string(CAR, 3, row), String.valueOf(e.getValue())));
+		}
+		return result;
+	}
+
+	/**
+	 * Same rows as the "ListCustomersInDescendingOrderOfTheirTotalBill" query:
+	 * first name, last name and total bill of every billed customer.
+	 *
+	 * @return the rows, highest total first
+	 */
+	public List<List<String>> customersByTotalBill(){
+		Map<Integer, Integer> customerRow = rowIndex(CUSTOMER);
+		List<Map.Entry<Integer, Long>> entries = new ArrayList<Map.Entry<Integer, Long>>(customerBill.entrySet());
+		Collections.sort(entries, new Comparator<Map.Entry<Integer, Long>>(){
+			public int compare(Map.Entry<Integer, Long> a, Map.Entry<Integer, Long> b){
+				int c = Long.compare(b.getValue(), a.getValue());
+				return c != 0 ? c : Integer.compare(a.getKey(), b.getKey());
+			}
+		});
+
+		List<List<String>> result = new ArrayList<List<String>>();
+		for (Map.Entry<Integer, Long> e : entries){
+			Integer row = customerRow.get(e.getKey());
+			if (row == null) continue;
+			result.add(Arrays.asList(string(CUSTOMER, 1, row), string(CUSTOMER, 2, row), String.valueOf(e.getValue())));
+		}
+		return result;
+	}
+
+	/**
+	 * @param table the table index
+	 * @return the number of rows held for the table
+	 */
+	public int rows(int table){
+		return rows[table];
+	}
+
+	/**
+	 * @param table the table index
+	 * @return how many times catchUp had to reload the table whole; its row
+	 *         indexes from before a reload are meaningless afterwards
+	 */
+	public int reloads(int table){
+		return reloads[table];
+	}
+
+	/**
+	 * Returns a read-only view of a column; only the first {@link #rows(int)}
+	 * entries are valid.  The view may point into the mapped file, so do not
+	 * keep it across catchUp or save.
+	 *
+	 * @param table the table index
+	 * @param column the column index
+	 * @return the column values
+	 */
+	public IntBuffer column(int table, int column){
+		return columns[table][column].asReadOnlyBuffer();
+	}
+
+	/**
+	 * @param table the table index
+	 * @param column the column index
+	 * @param row the row index
+	 * @return the value of the cell formatted the way JDBC returns it
+	 */
+	public String string(int table, int column, int row){
+		int value = columns[table][column].get(row);
+		switch (KINDS[table][column]){
+			case STR: return value == NULL_REF ? null : string(value);
+			case DATE: return LocalDate.ofEpochDay(value).toString();
+			default: return String.valueOf(value);
+		}
+	}
+
+	//looks up a dictionary entry, decoding it from the mapping on first use
+	private String string(int id){
+		if (id >= mappedStrings){
+			return strings.get(id - mappedStrings);
+		}
+		if (decoded == null){
+			decoded = new String[mappedStrings];
+		}
+		if (decoded[id] == null){
+			int start = mappedOffsets.get(id);
+			byte[] bytes = new byte[mappedOffsets.get(id + 1) - start];
+			ByteBuffer entry = mappedBytes.duplicate();
+			entry.position(start);
+			entry.get(bytes);
+			decoded[id] = new String(bytes, StandardCharsets.UTF_8);
+		}
+		return decoded[id];
+	}
+
+	private static MappedByteBuffer map(Path file) throws IOException {
+		try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)){
+			if (ch.size() < HEADER_SIZE){
+				throw new IOException("truncated header");
+			}
+			MappedByteBuffer map = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+			map.order(ByteOrder.LITTLE_ENDIAN);
+			return map;
+		}
+	}
+
+	//points the dictionary and every column at a checked mapping
+	private void attach(MappedByteBuffer map){
+		ByteBuffer body = map.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		body.position(HEADER_SIZE);
+		int dictionarySize = body.getInt();
+		int tableSize = body.getInt();
+		IntBuffer hashes = ints(body, dictionarySize);
+		IntBuffer offsets = ints(body, dictionarySize + 1);
+		IntBuffer table = ints(body, tableSize);
+		int bytes = offsets.get(dictionarySize);
+		ByteBuffer dictionary = body.slice();
+		dictionary.limit(bytes);
+		body.position(body.position() + (int) align(bytes));
+
+		IntBuffer[][] views = new IntBuffer[TABLES.length][];
+		int[] counts = new int[TABLES.length];
+		int[] keys = new int[TABLES.length];
+		for (int t = 0; t < TABLES.length; ++t){
+			counts[t] = body.getInt();
+			keys[t] = body.getInt();
+			views[t] = new IntBuffer[COLUMNS[t].length];
+			for (int c = 0; c < views[t].length; ++c)
+				views[t][c] = ints(body, counts[t]);
+		}
+		Map<Integer, Long> bills = new HashMap<Integer, Long>();
+		for (int i = body.getInt(); i > 0; --i){
+			bills.put(body.getInt(), body.getLong());
+		}
+		Map<Integer, Integer> services = new HashMap<Integer, Integer>();
+		for (int i = body.getInt(); i > 0; --i){
+			services.put(body.getInt(), body.getInt());
+		}
+
+		this.map = map;
+		this.mappedStrings = dictionarySize;
+		this.mappedHashes = hashes;
+		this.mappedOffsets = offsets;
+		this.mappedTable = table;
+		this.mappedBytes = dictionary;
+		this.decoded = null;
+		this.strings.clear();
+		this.stringIds.clear();
+		for (int t = 0; t < TABLES.length; ++t){
+			columns[t] = views[t];
+			rows[t] = counts[t];
+			maxKey[t] = keys[t];
+			onHeap[t] = false;
+		}
+		customerBill.clear();
+		customerBill.putAll(bills);
+		carServices.clear();
+		carServices.putAll(services);
+	}
+
+	//drops every view on the mapping so it can be unmapped safely
+	private void detach(){
+		this.map = null;
+		this.mappedHashes = null;
+		this.mappedOffsets = null;
+		this.mappedTable = null;
+		this.mappedBytes = null;
+		for (int t = 0; t < TABLES.length; ++t){
+			if (!onHeap[t]){
+				Arrays.fill(columns[t], null);
+			}
+		}
+	}
+
+	/*
+	 * Releases a mapping right away instead of waiting for the garbage
+	 * collector.  Only possible through sun.misc.Unsafe on Java 9 and later;
+	 * elsewhere the mapping is left for the collector.
+	 */
+	private static void unmap(MappedByteBuffer map){
+		try{
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+			invokeCleaner.invoke(theUnsafe.get(null), map);
+		}catch(Exception e){
+			// ignored.
+		}
+	}
+
+	//an int view on the next n ints of buf, which is advanced past them
+	private static IntBuffer ints(ByteBuffer buf, int n){
+		ByteBuffer slice = buf.slice().order(ByteOrder.LITTLE_ENDIAN);
+		slice.limit(4 * n);
+		buf.position(buf.position() + 4 * n);
+		return slice.asIntBuffer();
+	}
+
+	private static long align(long bytes){
+		return (bytes + 3) & ~3L;
+	}
+
+	private static String selectAll(int t){
+		StringBuilder sb = new StringBuilder("SELECT ");
+		for (int c = 0; c < COLUMNS[t].length; ++c){
+			if (c > 0) sb.append(", ");
+			sb.append(COLUMNS[t][c]);
+		}
+		return sb.append(" FROM ").append(TABLES[t]).toString();
+	}
+
+	//the rows whose key the database has but the snapshot does not
+	private List<List<String>> rowsWithNewKeys(MechanicShop esql, int t) throws SQLException {
+		Set<Integer> held = new HashSet<Integer>(rows[t] * 2);
+		IntBuffer keys = columns[t][0];
+		for (int r = 0; r < rows[t]; ++r){
+			held.add(keys.get(r));
+		}
+		StringBuilder missing = new StringBuilder();
+		for (List<String> key : esql.executeQueryAndReturnResult("SELECT " + COLUMNS[t][0] + " FROM " + TABLES[t])){
+			int id = find(key.get(0));
+			if (id != NULL_REF && held.contains(id)) continue;
+			if (missing.length() > 0) missing.append(", ");
+			missing.append('\'').append(key.get(0).replace("'", "''")).append('\'');
+		}
+		if (missing.length() == 0){
+			return new ArrayList<List<String>>();
+		}
+		return esql.executeQueryAndReturnResult(selectAll(t) + " WHERE " + COLUMNS[t][0] + " IN (" + missing + ")");
+	}
+
+	private void append(int t, List<List<String>> records){
+		ensureCapacity(t, rows[t] + records.size());
+		for (List<String> record : records){
+			int r = rows[t]++;
+			for (int c = 0; c < COLUMNS[t].length; ++c){
+				columns[t][c].put(r, encode(KINDS[t][c], record.get(c)));
+			}
+			if (KINDS[t][0] == INT){
+				maxKey[t] = Math.max(maxKey[t], columns[t][0].get(r));
+			}
+		}
+	}
+
+	private int encode(int kind, String value){
+		switch (kind){
+			case STR: return value == null ? NULL_REF : intern(value);
+			case DATE: return (int) LocalDate.parse(value.trim()).toEpochDay();
+			default: return Integer.parseInt(value.trim());
+		}
+	}
+
+	private int intern(String value){
+		int id = find(value);
+		if (id == NULL_REF){
+			id = mappedStrings + strings.size();
+			strings.add(value);
+			stringIds.put(value, id);
+		}
+		return id;
+	}
+
+	//the dictionary id of value, or NULL_REF if it is not in the dictionary
+	private int find(String value){
+		//probe the mapped hash table, decoding only the entries that collide
+		if (mappedStrings > 0){
+			int hash = value.hashCode();
+			int mask = mappedTable.capacity() - 1;
+			for (int slot = hash & mask; mappedTable.get(slot) != 0; slot = (slot + 1) & mask){
+				int id = mappedTable.get(slot) - 1;
+				if (mappedHashes.get(id) == hash && string(id).equals(value)) return id;
+			}
+		}
+		Integer id = stringIds.get(value);
+		return id == null ? NULL_REF : id;
+	}
+
+	//moves a mapped table to the heap, or grows a heap table, to fit n rows
+	private void ensureCapacity(int t, int n){
+		if (onHeap[t] && columns[t][0].capacity() >= n) return;
+		int capacity = Math.max(16, Math.max(n, columns[t][0].capacity() * 2));
+		for (int c = 0; c < columns[t].length; ++c){
+			int[] values = new int[capacity];
+			IntBuffer old = columns[t][c].duplicate();
+			old.position(0);
+			old.get(values, 0, rows[t]);
+			columns[t][c] = IntBuffer.wrap(values);
+		}
+		onHeap[t] = true;
+	}
+
+	private Map<Integer, Integer> rowIndex(int t){
+		Map<Integer, Integer> index = new HashMap<Integer, Integer>(rows[t] * 2);
+		IntBuffer keys = columns[t][0];
+		for (int r = 0; r < rows[t]; ++r){
+			index.put(keys.get(r), r);
+		}
+		return index;
+	}
+
+	//indexes the rows that were there before the current catch-up
+	private void buildJoinIndexes(int srRows, int crRows){
+		if (joinIndexesBuilt) return;
+		IntBuffer rid = columns[SERVICE_REQUEST][0], customer = columns[SERVICE_REQUEST][1];
+		for (int r = 0; r < srRows; ++r){
+			requestCustomer.put(rid.get(r), customer.get(r));
+		}
+		IntBuffer wid = columns[CLOSED_REQUEST][0], bill = columns[CLOSED_REQUEST][5];
+		for (int r = 0; r < crRows; ++r){
+			closedBill.put(wid.get(r), bill.get(r));
+		}
+		joinIndexesBuilt = true;
+	}
+
+	private void rebuildAggregates(){
+		customerBill.clear();
+		carServices.clear();
+		requestCustomer.clear();
+		closedBill.clear();
+		joinIndexesBuilt = true;
+		updateAggregates(0, 0);
+	}
+
+	/*
+	 * Folds the service requests from row srFrom and the closed requests from
+	 * row crFrom into the aggregates.  Closed requests go first, against the
+	 * old service requests only, so every pair is counted exactly once.  The
+	 * bill reports join Closed_Request.wid to Service_Request.rid.
+	 */
+	private void updateAggregates(int srFrom, int crFrom){
+		IntBuffer wid = columns[CLOSED_REQUEST][0], bill = columns[CLOSED_REQUEST][5];
+		for (int r = crFrom; r < rows[CLOSED_REQUEST]; ++r){
+			closedBill.put(wid.get(r), bill.get(r));
+			Integer customer = requestCustomer.get(wid.get(r));
+			if (customer != null){
+				addBill(customer, bill.get(r));
+			}
+		}
+		IntBuffer rid = columns[SERVICE_REQUEST][0], customer = columns[SERVICE_REQUEST][1], vin = columns[SERVICE_REQUEST][2];
+		for (int r = srFrom; r < rows[SERVICE_REQUEST]; ++r){
+			requestCustomer.put(rid.get(r), customer.get(r));
+			Integer services = carServices.get(vin.get(r));
+			carServices.put(vin.get(r), services == null ? 1 : services + 1);
+			Integer amount = closedBill.get(rid.get(r));
+			if (amount != null){
+				addBill(customer.get(r), amount);
+			}
+		}
+	}
+
+	private void addBill(int customer, long amount){
+		Long total = customerBill.get(customer);
+		customerBill.put(customer, total == null ? amount : total + amount);
+	}
+}